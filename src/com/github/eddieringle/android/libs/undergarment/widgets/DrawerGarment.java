@@ -25,6 +25,7 @@ package com.github.eddieringle.android.libs.undergarment.widgets;
 
 import com.github.eddieringle.android.libs.undergarment.R;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -61,6 +62,20 @@ public class DrawerGarment extends FrameLayout {
 
     private static final float TOUCH_TARGET_WIDTH_DIP = 48.0f;
 
+    private static final float TOUCH_THRESHOLD_DIP = 30.0f;
+
+    /*
+     * Maximum |dy|/|dx| ratio (roughly 27 degrees off the horizontal) for a gesture to still be
+     * considered a horizontal drag of the drawer.
+     */
+    private static final float GESTURE_MAX_SLOPE = 0.5f;
+
+    private static final int GESTURE_UNDECIDED = 0;
+
+    private static final int GESTURE_DRAWER = 1;
+
+    private static final int GESTURE_CHILD = 2;
+
     private boolean mAdded = false;
 
     private boolean mDrawerEnabled = true;
@@ -69,8 +84,6 @@ public class DrawerGarment extends FrameLayout {
 
     private boolean mDrawerMoving = false;
 
-    private boolean mGestureStarted = false;
-
     private int mDecorContentBackgroundColor = Color.TRANSPARENT;
 
     private int mDecorOffsetX = 0;
@@ -87,10 +100,16 @@ public class DrawerGarment extends FrameLayout {
 
     private int mGestureCurrentY;
 
+    private int mGestureState = GESTURE_CHILD;
+
     private int mSlideTarget;
 
     private int mTouchTargetWidth;
 
+    private int mTouchThreshold;
+
+    private int mTouchSlopSquare;
+
     private Drawable mShadowDrawable;
 
     private Handler mScrollerHandler;
@@ -200,6 +219,11 @@ public class DrawerGarment extends FrameLayout {
 
         mTouchTargetWidth = Math.round(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
                 TOUCH_TARGET_WIDTH_DIP, dm));
+        mTouchThreshold = Math.round(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                TOUCH_THRESHOLD_DIP, dm));
+
+        final int touchSlop = ViewConfiguration.get(activity).getScaledTouchSlop();
+        mTouchSlopSquare = touchSlop * touchSlop;
 
         mShadowDrawable = getResources().getDrawable(R.drawable.decor_shadow);
 
@@ -264,23 +288,28 @@ public class DrawerGarment extends FrameLayout {
 
     @Override
     public boolean onInterceptTouchEvent(MotionEvent ev) {
-        final ViewConfiguration vc = ViewConfiguration.get(getContext());
-        final float touchThreshold = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 30.0f,
-                getResources().getDisplayMetrics());
-        final int widthPixels = getResources().getDisplayMetrics().widthPixels;
+        final int action = ev.getAction() & MotionEvent.ACTION_MASK;
 
-        final double hypo;
-        final boolean overcameSlop;
+        final int deltaX;
+        final int deltaY;
 
         /* Immediately bomb out if the drawer is disabled */
         if (!mDrawerEnabled) {
             return false;
         }
 
+        /*
+         * If this gesture has already been handed off to a child, let the rest of it pass
+         * straight through without doing any more work.
+         */
+        if (mGestureState == GESTURE_CHILD && action != MotionEvent.ACTION_DOWN) {
+            return false;
+        }
+
         /*
          * ...otherwise, handle the various types of input events.
          */
-        switch (ev.getAction()) {
+        switch (action) {
             case MotionEvent.ACTION_DOWN:
                 /*
                 * Record the starting X and Y positions for the possible gesture.
@@ -288,43 +317,36 @@ public class DrawerGarment extends FrameLayout {
                 mGestureStartX = mGestureCurrentX = (int) (ev.getX() + 0.5f);
                 mGestureStartY = mGestureCurrentY = (int) (ev.getY() + 0.5f);
 
-                /*
-                * If the starting X position is within the touch threshold of 30dp inside the
-                * screen's
-                * left edge, set mGestureStared to true so that future ACTION_MOVE events will
-                * continue being handled here.
-                */
-
-                if (mGestureStartX < touchThreshold && !mDrawerOpened) {
-                    mGestureStarted = true;
-                }
-
-                if (mGestureStartX > mDrawerWidth && mDrawerOpened) {
-                    mGestureStarted = true;
-                }
-
                 if (mDrawerMoving && mGestureStartX > mDecorOffsetX) {
+                    mGestureState = GESTURE_DRAWER;
                     return true;
                 }
 
+                /*
+                * Decide up front whether this gesture could ever belong to the drawer. Touches
+                * on the visible sliver of content while the drawer is open are always ours.
+                * Edge swipes with the drawer closed and swipes within the open drawer are ours
+                * only if nothing underneath the touch can scroll in the same direction, which
+                * is checked once here rather than on every move.
+                */
+                if (mDrawerOpened && mGestureStartX > mDrawerWidth) {
+                    mGestureState = GESTURE_UNDECIDED;
+                } else if (!mDrawerOpened && mGestureStartX < mTouchThreshold) {
+                    mGestureState = canChildScrollHorizontally(mDecorContent, -1, mGestureStartX,
+                            mGestureStartY) ? GESTURE_CHILD : GESTURE_UNDECIDED;
+                } else if (mDrawerOpened) {
+                    mGestureState = canChildScrollHorizontally(mDrawerContent, 1, mGestureStartX,
+                            mGestureStartY) ? GESTURE_CHILD : GESTURE_UNDECIDED;
+                } else {
+                    mGestureState = GESTURE_CHILD;
+                }
+
                 /*
                 * We still want to return false here since we aren't positive we've got a gesture
                 * we want just yet.
                 */
                 return false;
             case MotionEvent.ACTION_MOVE:
-
-                /* Make sure the gesture was started within 30dp of the screen's left edge. */
-                if (!mGestureStarted) {
-                    return false;
-                }
-
-                /* Make sure we're not going backwards, but only if the drawer isn't open yet */
-                if (!mDrawerOpened && (ev.getX() < mGestureCurrentX || ev
-                        .getX() < mGestureStartX)) {
-                    return (mGestureStarted = false);
-                }
-
                 /*
                 * Update the current X and Y positions for the gesture.
                 */
@@ -334,23 +356,42 @@ public class DrawerGarment extends FrameLayout {
                 /*
                 * Decide whether there is enough movement to do anything real.
                 */
-                hypo = Math.hypot(mGestureCurrentX - mGestureStartX,
-                        mGestureCurrentY - mGestureStartY);
-                overcameSlop = hypo > vc.getScaledTouchSlop();
+                deltaX = mGestureCurrentX - mGestureStartX;
+                deltaY = mGestureCurrentY - mGestureStartY;
+                if (deltaX * deltaX + deltaY * deltaY <= mTouchSlopSquare) {
+                    return false;
+                }
 
                 /*
-                * If the last check is true, we'll start handling events in DrawerGarment's
+                * The gesture is now locked to one owner. The visible content while the drawer is
+                * open always belongs to us; otherwise we only take mostly-horizontal drags
+                * heading in the direction that would toggle the drawer.
+                */
+                if (mDrawerOpened && mGestureStartX > mDrawerWidth) {
+                    mGestureState = GESTURE_DRAWER;
+                } else if (Math.abs(deltaY) > Math.abs(deltaX) * GESTURE_MAX_SLOPE) {
+                    mGestureState = GESTURE_CHILD;
+                } else if (mDrawerOpened ? deltaX < 0 : deltaX > 0) {
+                    mGestureState = GESTURE_DRAWER;
+                } else {
+                    mGestureState = GESTURE_CHILD;
+                }
+
+                /*
+                * If we took the gesture, we'll start handling events in DrawerGarment's
                 * onTouchEvent(MotionEvent) method from now on.
                 */
-                return overcameSlop;
+                return mGestureState == GESTURE_DRAWER;
             case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
 
-                mGestureStarted = false;
+                mGestureState = GESTURE_CHILD;
 
                 /*
                 * If we just tapped the right edge with the drawer open, close the drawer.
                 */
-                if (mGestureStartX > mDrawerWidth && mDrawerOpened) {
+                if (action == MotionEvent.ACTION_UP && mGestureStartX > mDrawerWidth
+                        && mDrawerOpened) {
                     closeDrawer();
                     mGestureStartX = mGestureCurrentX = -1;
                     mGestureStartY = mGestureCurrentY = -1;
@@ -365,6 +406,53 @@ public class DrawerGarment extends FrameLayout {
         return false;
     }
 
+    /**
+     * Determines whether the given view, or any of its descendants under the given point, can be
+     * scrolled horizontally in the given direction.
+     *
+     * @param view View to test
+     * @param direction Negative to check scrolling left, positive to check scrolling right
+     * @param x X coordinate of the touch, relative to this DrawerGarment
+     * @param y Y coordinate of the touch, relative to this DrawerGarment
+     * @return true if something under the touch can scroll in the given direction
+     */
+    private boolean canChildScrollHorizontally(View view, int direction, int x, int y) {
+        /* View#canScrollHorizontally(int) isn't available before Ice Cream Sandwich */
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return false;
+        }
+        return canViewScrollHorizontally(view, direction, x - view.getLeft(), y - view.getTop());
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static boolean canViewScrollHorizontally(View view, int direction, float x, float y) {
+        if (view instanceof ViewGroup) {
+            final ViewGroup group = (ViewGroup) view;
+            final float scrolledX = x + group.getScrollX();
+            final float scrolledY = y + group.getScrollY();
+
+            /*
+             * Walk the children front-to-back and only descend into the topmost one under the
+             * touch, as that's the one which will receive it.
+             */
+            for (int i = group.getChildCount() - 1; i >= 0; i--) {
+                final View child = group.getChildAt(i);
+                final float childLeft = child.getLeft() + child.getTranslationX();
+                final float childTop = child.getTop() + child.getTranslationY();
+                if (child.getVisibility() == VISIBLE
+                        && scrolledX >= childLeft && scrolledX < childLeft + child.getWidth()
+                        && scrolledY >= childTop && scrolledY < childTop + child.getHeight()) {
+                    if (canViewScrollHorizontally(child, direction, scrolledX - childLeft,
+                            scrolledY - childTop)) {
+                        return true;
+                    }
+                    break;
+                }
+            }
+        }
+        return view.canScrollHorizontally(direction);
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
 
@@ -389,7 +477,7 @@ public class DrawerGarment extends FrameLayout {
         mGestureCurrentX = (int) (event.getX() + 0.5f);
         mGestureCurrentY = (int) (event.getY() + 0.5f);
 
-        switch (event.getAction()) {
+        switch (event.getAction() & MotionEvent.ACTION_MASK) {
             case MotionEvent.ACTION_MOVE:
                 mDrawerContent.setVisibility(VISIBLE);
                 mDrawerMoving = true;
@@ -415,9 +503,25 @@ public class DrawerGarment extends FrameLayout {
                     invalidate();
                 }
 
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                mGestureState = GESTURE_CHILD;
+                mDrawerMoving = false;
+
+                /*
+                * The gesture was taken away from us, so just settle the drawer towards whichever
+                * side it's closest to.
+                */
+                if (mDecorOffsetX > (widthPixels / 2.0)) {
+                    mDrawerOpened = false;
+                    openDrawer();
+                } else {
+                    mDrawerOpened = true;
+                    closeDrawer();
+                }
                 return true;
             case MotionEvent.ACTION_UP:
-                mGestureStarted = false;
+                mGestureState = GESTURE_CHILD;
                 mDrawerMoving = false;
 
                 /*